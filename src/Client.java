@@ -3,15 +3,25 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
 
 public class Client {
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
     private String username;
+    private CompressedLines.Decoder decompressor;
+    private volatile int[] knownWords; // Sorted packed words the server accepts as guesses, null until received
+    private volatile String knownWordsFingerprint;
+    private volatile String gameFingerprint; // Dictionary the current game was started with, if the server said
+    private static final Path DICTIONARY_CACHE = Paths.get(System.getProperty("user.home"), ".chatapp");
 
     private JFrame frame;
     private JTextArea chatArea;
@@ -36,6 +46,7 @@ public class Client {
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
             setupGUI();
+            out.println(CompressedLines.CAPABILITY); // Offer compression for large server messages
             /*
             The server asks the user for input. The user types the username in the following format "username = ComNet"
             message on the terminal. If the user doesn’t provide a username, the server doesn’t accept the user’s messages.
@@ -144,6 +155,78 @@ public class Client {
         out.println("GUESS:" + guess);
     }
 
+    // Local check so obvious non-words never leave the client. The server still validates every guess.
+    public boolean isKnownWord(String guess){
+        int[] words = knownWords;
+        if (words == null) {
+            return true; // No dictionary yet, let the server decide
+        }
+        String game = gameFingerprint;
+        if (game != null && !game.equals(knownWordsFingerprint)) {
+            return true; // The dictionary was reloaded mid game, the server still checks against the old one
+        }
+        int packed = Dictionary.pack(guess);
+        return packed >= 0 && Arrays.binarySearch(words, packed) >= 0;
+    }
+
+    // The server told us which dictionary it uses; load it from the disk cache or ask for a copy
+    private void useDictionary(String fingerprint){
+        if (!fingerprint.matches("\\d+-[0-9a-f]+")) {
+            return; // Also keeps the cache file name inside the cache directory
+        }
+        Path cached = DICTIONARY_CACHE.resolve("dictionary-" + fingerprint + ".bin");
+        try {
+            if (Files.exists(cached)) {
+                byte[] encoded = Files.readAllBytes(cached);
+                if (matchesFingerprint(encoded, fingerprint)) {
+                    knownWordsFingerprint = fingerprint;
+                    knownWords = Dictionary.decodeWords(encoded);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read cached dictionary: " + e.getMessage());
+        }
+        out.println("/dict");
+    }
+
+    private void storeDictionary(String payload){
+        // Chat from a user called DICT starts with "DICT:" too, so anything that isn't a well formed payload is ignored
+        int split = payload.indexOf(':');
+        if (split < 0) {
+            return;
+        }
+        String fingerprint = payload.substring(0, split);
+        if (!fingerprint.matches("\\d+-[0-9a-f]+")) {
+            return;
+        }
+        byte[] encoded;
+        try {
+            encoded = Base64.getDecoder().decode(payload.substring(split + 1));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (!matchesFingerprint(encoded, fingerprint)) {
+            System.out.println("Ignoring corrupted dictionary " + fingerprint);
+            return;
+        }
+        knownWordsFingerprint = fingerprint;
+        knownWords = Dictionary.decodeWords(encoded);
+        try {
+            Files.createDirectories(DICTIONARY_CACHE);
+            Files.write(DICTIONARY_CACHE.resolve("dictionary-" + fingerprint + ".bin"), encoded);
+        } catch (IOException e) {
+            System.out.println("Could not cache dictionary: " + e.getMessage());
+        }
+    }
+
+    // Fingerprints are "<version>-<crc32 of the encoded words>"
+    private static boolean matchesFingerprint(byte[] encoded, String fingerprint){
+        CRC32 crc = new CRC32();
+        crc.update(encoded);
+        return fingerprint.endsWith("-" + Long.toHexString(crc.getValue()));
+    }
+
     // Listen to messages from the server
     private class ServerListener implements Runnable {
         @Override
@@ -151,7 +234,19 @@ public class Client {
             try {
                 String message;
                 while ((message = in.readLine()) != null) {
-                    if (message.startsWith("GAME_START")) {
+                    if (message.equals(CompressedLines.CAPABILITY)) {
+                        decompressor = new CompressedLines.Decoder(username);
+                        continue;
+                    } else if (decompressor != null && message.startsWith(CompressedLines.PREFIX)) {
+                        message = decompressor.decode(message);
+                    }
+
+                    if (message.startsWith("DICT_VERSION:")) {
+                        useDictionary(message.substring(13));
+                    }else if (message.startsWith("DICT:")) {
+                        storeDictionary(message.substring(5));
+                    }else if (message.startsWith("GAME_START")) {
+                        gameFingerprint = message.startsWith("GAME_START:") ? message.substring(11) : null;
                         openGameWindow();
                     }else if(message.startsWith("ANSWER:")){
                         String answer = message.substring(7);
@@ -193,6 +288,9 @@ public class Client {
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(frame, "Disconnected from server.", "Connection Error", JOptionPane.ERROR_MESSAGE);
                 System.exit(0);
+            } catch (DataFormatException e) {
+                JOptionPane.showMessageDialog(frame, "Received a corrupted message from the server.", "Connection Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(0);
             }
         }
     }
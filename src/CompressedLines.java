@@ -0,0 +1,134 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+Optional deflate compression for large server -> client lines (USERS: lists, /allUsers, long broadcasts).
+
+The client offers it by sending CAPABILITY before its username; the server answers with the same line once it is
+switched on. From then on any line at least THRESHOLD characters long is sent as "Z:" + base64 of the next chunk of
+a single raw deflate stream for that connection. The stream is flushed per line but never reset, so repeated user
+lists compress against everything sent before, and both ends start from a preset dictionary of protocol keywords
+plus the client's username. Shorter lines are sent as plain text as before.
+
+Tuned with -Dcompress.threshold (characters, default 512) and -Dcompress.level (0-9, default 6).
+Run "java CompressedLines" to see the bytes saved versus CPU spent for different settings.
+ */
+public class CompressedLines {
+    public static final String CAPABILITY = "CAPS:deflate";
+    public static final String PREFIX = "Z:";
+    public static final int THRESHOLD = Integer.getInteger("compress.threshold", 512);
+    public static final int LEVEL = Integer.getInteger("compress.level", 6);
+
+    private static final String KEYWORDS = "GAME_START ANSWER: GUESS_FEEDBACK: INVALID_WORD WINNER: LOSER: STALEMATE: "
+            + "USERS: SERVER: has joined the chat. has left the chat. has challenged you to a game! Type /y to accept "
+            + "or /n to decline. have started a game of WordWhiz against each other. To challenge a user, type "
+            + "\"/challenge (username)\". has defeated in WordWhiz by guessing the word The word was: ";
+
+    private static byte[] presetDictionary(String username) {
+        // Deflate favours the end of the dictionary, so the most likely matches go last
+        return (KEYWORDS + username + "," + username + ": ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Server side. One per connection, shared by every thread that sends to it.
+    public static class Encoder {
+        private final Deflater deflater;
+        private final byte[] chunk = new byte[4096];
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        public Encoder(String username, int level) {
+            deflater = new Deflater(level, true);
+            deflater.setDictionary(presetDictionary(username));
+        }
+
+        public boolean shouldCompress(String line) {
+            return line.length() >= THRESHOLD;
+        }
+
+        // Callers must write the result before encoding the next line, the client inflates them in order
+        public synchronized String encode(String line) {
+            output.reset();
+            deflater.setInput(line.getBytes(StandardCharsets.UTF_8));
+            int length;
+            do {
+                length = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                output.write(chunk, 0, length);
+            } while (length == chunk.length);
+            return PREFIX + Base64.getEncoder().encodeToString(output.toByteArray());
+        }
+
+        public synchronized void close() {
+            deflater.end();
+        }
+    }
+
+    // Client side, used only by the thread reading from the server
+    public static class Decoder {
+        private final Inflater inflater;
+        private final byte[] chunk = new byte[4096];
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        public Decoder(String username) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(presetDictionary(username));
+        }
+
+        public String decode(String line) throws DataFormatException {
+            output.reset();
+            inflater.setInput(Base64.getDecoder().decode(line.substring(PREFIX.length())));
+            int length;
+            do {
+                length = inflater.inflate(chunk);
+                output.write(chunk, 0, length);
+            } while (length > 0 || !inflater.needsInput());
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /*
+    Rough tuning benchmark: encodes typical bulk payloads for growing user counts at each compression level and
+    prints the bytes on the wire (including base64) and the CPU time per line. "first B" is the first line on a fresh
+    connection; the averages are over a stream where one new user joins between lines, as happens with USERS: lists.
+     */
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        System.out.printf("%-10s %5s %6s %10s %10s %10s %7s %10s%n", "payload", "users", "level", "raw B", "first B", "wire B", "ratio", "us/line");
+        for (int users : new int[]{10, 100, 500}) {
+            StringBuilder list = new StringBuilder();
+            for (int i = 0; i < users; i++) {
+                list.append(i == 0 ? "" : ",").append("player").append(i * 7919 % 10007);
+            }
+            String usersLine = "USERS:" + list;
+            String allUsersLine = "SERVER: [" + list.toString().replace(",", ", ") + "]";
+            for (int level : new int[]{1, 6, 9}) {
+                benchmark("USERS:", users, level, usersLine, iterations);
+                benchmark("/allUsers", users, level, allUsersLine, iterations);
+            }
+        }
+    }
+
+    private static void benchmark(String name, int users, int level, String line, int iterations) {
+        Encoder encoder = new Encoder("player42", level);
+        long rawBytes = 0;
+        long wireBytes = 0;
+        long firstBytes = 0;
+        long elapsed = 0;
+        for (int i = 0; i < iterations; i++) {
+            String next = line + ",guest" + i;
+            long start = System.nanoTime();
+            int encoded = encoder.encode(next).length() + 1;
+            elapsed += System.nanoTime() - start;
+            if (i == 0) {
+                firstBytes = encoded;
+            }
+            rawBytes += next.length() + 1;
+            wireBytes += encoded;
+        }
+        encoder.close();
+        System.out.printf("%-10s %5d %6d %10d %10d %10d %7.2f %10.1f%n", name, users, level, rawBytes / iterations,
+                firstBytes, wireBytes / iterations, (double) wireBytes / rawBytes, elapsed / 1000.0 / iterations);
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/*
+Immutable word list backed by a compact binary snapshot.
+
+Every five letter word is packed into a single int (5 bits per letter), and the answer and allowed lists are stored
+as sorted int arrays so lookups are a binary search. The snapshot file is memory mapped at startup, which is a lot
+faster than parsing wordlist.txt and allowed.txt into HashSets.
+
+Snapshot layout (big endian):
+    int magic, int format, int version, int sourceChecksum, int answerCount, int allowedCount,
+    int[answerCount], int[allowedCount]
+
+sourceChecksum is a CRC of the text word lists the snapshot was compiled from, so the server can tell when the lists
+have been edited since and the snapshot is stale.
+
+Build a snapshot ahead of time with: java Dictionary wordlist.txt allowed.txt dictionary.bin [version]
+
+Clients get a copy of every guessable word so they can reject non-words without a round trip. That copy is the merged
+sorted list, delta encoded as varints (about 2 bytes a word), and is identified by a fingerprint of version + CRC so a
+client can keep it cached on disk.
+ */
+public class Dictionary {
+    public static final int WORD_LENGTH = 5;
+    private static final int MAGIC = 0x57574443; // "WWDC"
+    private static final int FORMAT = 2;
+    private static final int HEADER_INTS = 6;
+
+    private final int version;
+    private final int sourceChecksum;
+    private final IntBuffer answers;
+    private final IntBuffer allowed;
+    private volatile String fingerprint;
+    private volatile String encodedWords;
+
+    private Dictionary(int version, int sourceChecksum, IntBuffer answers, IntBuffer allowed) {
+        this.version = version;
+        this.sourceChecksum = sourceChecksum;
+        this.answers = answers;
+        this.allowed = allowed;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    public int getAnswerCount() {
+        return answers.limit();
+    }
+
+    public boolean isAnswer(String word) {
+        int packed = pack(word);
+        return packed >= 0 && indexOf(answers, packed) >= 0;
+    }
+
+    // True if the word can be guessed, i.e. it's either an answer or in the allowed list
+    public boolean contains(String word) {
+        int packed = pack(word);
+        return packed >= 0 && (indexOf(answers, packed) >= 0 || indexOf(allowed, packed) >= 0);
+    }
+
+    public String randomAnswer(Random random) {
+        return unpack(answers.get(random.nextInt(answers.limit())));
+    }
+
+    // Packs an upper case A-Z word into an int, or returns -1 if it isn't a valid five letter word
+    public static int pack(String word) {
+        if (word == null || word.length() != WORD_LENGTH) {
+            return -1;
+        }
+        int packed = 0;
+        for (int i = 0; i < WORD_LENGTH; i++) {
+            char c = word.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                return -1;
+            }
+            packed = (packed << 5) | (c - 'A');
+        }
+        return packed;
+    }
+
+    // Every guessable word (answers and allowed), sorted
+    public int[] guessableWords() {
+        int[] words = new int[answers.limit() + allowed.limit()];
+        int count = 0;
+        int a = 0;
+        int b = 0;
+        while (a < answers.limit() || b < allowed.limit()) {
+            int next;
+            if (b >= allowed.limit() || (a < answers.limit() && answers.get(a) <= allowed.get(b))) {
+                next = answers.get(a++);
+            } else {
+                next = allowed.get(b++);
+            }
+            if (count == 0 || words[count - 1] != next) {
+                words[count++] = next;
+            }
+        }
+        return Arrays.copyOf(words, count);
+    }
+
+    // "<version>-<crc32>", changes whenever the guessable words do
+    public String getFingerprint() {
+        if (fingerprint == null) {
+            CRC32 crc = new CRC32();
+            crc.update(encodeWords(guessableWords()));
+            fingerprint = version + "-" + Long.toHexString(crc.getValue());
+        }
+        return fingerprint;
+    }
+
+    // Base64 of the delta encoded guessable words, computed once per dictionary and sent to clients that ask
+    public String getEncodedWords() {
+        if (encodedWords == null) {
+            encodedWords = Base64.getEncoder().encodeToString(encodeWords(guessableWords()));
+        }
+        return encodedWords;
+    }
+
+    // Sorted packed words -> gaps between neighbours as 7 bit varints
+    public static byte[] encodeWords(int[] words) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(words.length * 2);
+        int previous = 0;
+        for (int word : words) {
+            int gap = word - previous;
+            previous = word;
+            while ((gap & ~0x7F) != 0) {
+                output.write((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            output.write(gap);
+        }
+        return output.toByteArray();
+    }
+
+    public static int[] decodeWords(byte[] encoded) {
+        int[] words = new int[encoded.length];
+        int count = 0;
+        int previous = 0;
+        int i = 0;
+        while (i < encoded.length) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[i++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0 && i < encoded.length);
+            previous += gap;
+            words[count++] = previous;
+        }
+        return Arrays.copyOf(words, count);
+    }
+
+    public static String unpack(int packed) {
+        char[] letters = new char[WORD_LENGTH];
+        for (int i = WORD_LENGTH - 1; i >= 0; i--) {
+            letters[i] = (char) ('A' + (packed & 0x1F));
+            packed >>>= 5;
+        }
+        return new String(letters);
+    }
+
+    private static int indexOf(IntBuffer words, int packed) {
+        int low = 0;
+        int high = words.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = words.get(mid);
+            if (value < packed) {
+                low = mid + 1;
+            } else if (value > packed) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Parses the plain text word lists (one word per line) into a new dictionary
+    public static Dictionary compile(InputStream answerList, InputStream allowedList, int version) throws IOException {
+        return compile(readWordList(answerList), readWordList(allowedList), version);
+    }
+
+    public static Dictionary compile(byte[] answerList, byte[] allowedList, int version) throws IOException {
+        return new Dictionary(version, sourceChecksum(answerList, allowedList),
+                IntBuffer.wrap(readWords(answerList)), IntBuffer.wrap(readWords(allowedList)));
+    }
+
+    public static byte[] readWordList(InputStream input) throws IOException {
+        if (input == null) {
+            throw new FileNotFoundException("Word list not found");
+        }
+        return input.readAllBytes();
+    }
+
+    // CRC of both text lists, stored in the snapshot header
+    public static int sourceChecksum(byte[] answerList, byte[] allowedList) {
+        CRC32 crc = new CRC32();
+        crc.update(answerList);
+        crc.update(allowedList);
+        return (int) crc.getValue();
+    }
+
+    private static int[] readWords(byte[] input) throws IOException {
+        int[] words = new int[4096];
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int packed = pack(line.trim().toUpperCase());
+                if (packed < 0) {
+                    continue;
+                }
+                if (count == words.length) {
+                    words = Arrays.copyOf(words, count * 2);
+                }
+                words[count++] = packed;
+            }
+        }
+        words = Arrays.copyOf(words, count);
+        Arrays.sort(words);
+        // Drop duplicates so binary search and random picks stay uniform
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || words[unique - 1] != words[i]) {
+                words[unique++] = words[i];
+            }
+        }
+        return Arrays.copyOf(words, unique);
+    }
+
+    /*
+    Writes this dictionary as a snapshot. The file is written next to the target and moved into place, so a server
+    mapping the old snapshot never sees a half written file.
+     */
+    public void write(Path snapshot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((HEADER_INTS + answers.limit() + allowed.limit()) * Integer.BYTES);
+        buffer.putInt(MAGIC).putInt(FORMAT).putInt(version).putInt(sourceChecksum).putInt(answers.limit()).putInt(allowed.limit());
+        for (int i = 0; i < answers.limit(); i++) {
+            buffer.putInt(answers.get(i));
+        }
+        for (int i = 0; i < allowed.limit(); i++) {
+            buffer.putInt(allowed.get(i));
+        }
+        buffer.flip();
+
+        Path directory = snapshot.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, snapshot.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Memory maps a snapshot written by write(). The mapping stays valid even if the file is replaced later on.
+    public static Dictionary map(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_INTS * Integer.BYTES || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+                throw new IOException("Not a dictionary snapshot: " + snapshot);
+            }
+            int version = buffer.getInt();
+            int sourceChecksum = buffer.getInt();
+            int answerCount = buffer.getInt();
+            int allowedCount = buffer.getInt();
+            if (answerCount <= 0 || allowedCount < 0 || buffer.remaining() != (answerCount + allowedCount) * Integer.BYTES) {
+                throw new IOException("Corrupt dictionary snapshot: " + snapshot);
+            }
+            IntBuffer words = buffer.asIntBuffer();
+            IntBuffer answers = words.slice().limit(answerCount);
+            IntBuffer allowed = words.position(answerCount).slice();
+            return new Dictionary(version, sourceChecksum, answers.slice(), allowed);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java Dictionary <wordlist.txt> <allowed.txt> <snapshot.bin> [version]");
+            return;
+        }
+        int version = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        Dictionary dictionary;
+        try (InputStream answerList = new FileInputStream(args[0]);
+             InputStream allowedList = new FileInputStream(args[1])) {
+            dictionary = compile(answerList, allowedList, version);
+        }
+        dictionary.write(Paths.get(args[2]));
+        System.out.println("Wrote dictionary v" + version + " (" + dictionary.answers.limit() + " answers, "
+                + dictionary.allowed.limit() + " allowed) to " + args[2]);
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Asynchronous structured event log for the server.
+
+Handler threads only do a level check, an optional sampling check and one enqueue into a lock-free ring buffer.
+A single background thread drains the buffer and writes one JSON record per line to a rolling log file, so nothing
+on the message path ever waits on stdout or disk. If the buffer is full the event is dropped and counted instead of
+blocking the caller.
+
+Configured with system properties:
+    log.file (chatapp.log), log.level (INFO), log.maxBytes (10 MB), log.maxFiles (5), log.bufferSize (8192),
+    log.console (false) to also echo records to stdout, log.sample.<TYPE> to keep 1 in N events of a type
+ */
+public class EventLog {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    public enum Type { SERVER, CONNECT, JOIN, CHAT, COMMAND, GUESS, LEAVE, ERROR }
+
+    private static final Level level = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+    private static final Map<Type, Integer> sampleRates = new EnumMap<>(Type.class);
+    private static final RingBuffer buffer = new RingBuffer(Integer.getInteger("log.bufferSize", 8192));
+    private static final AtomicLong dropped = new AtomicLong();
+    // Set by the writer thread while it is parked on an empty buffer, so producers know to wake it up
+    private static volatile Thread parkedWriter;
+
+    static {
+        for (Type type : Type.values()) {
+            sampleRates.put(type, Integer.getInteger("log.sample." + type.name(), 1));
+        }
+        Writer writer = new Writer(Paths.get(System.getProperty("log.file", "chatapp.log")),
+                Long.getLong("log.maxBytes", 10L * 1024 * 1024), Integer.getInteger("log.maxFiles", 5),
+                Boolean.getBoolean("log.console"));
+        Thread thread = new Thread(writer, "event-log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::drainAndClose, "event-log-flush"));
+    }
+
+    public static boolean isEnabled(Level eventLevel) {
+        return eventLevel.compareTo(level) >= 0;
+    }
+
+    public static void info(Type type, String user, String message) {
+        log(Level.INFO, type, user, -1, message, null);
+    }
+
+    public static void error(Type type, String user, String message, Throwable error) {
+        log(Level.ERROR, type, user, -1, message, error);
+    }
+
+    /*
+    Queues an event. latencyNanos is how long the server spent handling the event, or -1 if it doesn't apply.
+    Never blocks; returns false if the event was filtered, sampled out or dropped.
+     */
+    public static boolean log(Level eventLevel, Type type, String user, long latencyNanos, String message, Throwable error) {
+        if (!isEnabled(eventLevel)) {
+            return false;
+        }
+        int sampleRate = sampleRates.get(type);
+        if (sampleRate > 1 && eventLevel.compareTo(Level.WARN) < 0 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return false;
+        }
+        if (!buffer.offer(new Event(System.currentTimeMillis(), eventLevel, type, user, latencyNanos, message, error))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        Thread writer = parkedWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static class Event {
+        final long timestamp;
+        final Level level;
+        final Type type;
+        final String user;
+        final long latencyNanos;
+        final String message;
+        final Throwable error;
+
+        Event(long timestamp, Level level, Type type, String user, long latencyNanos, String message, Throwable error) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.type = type;
+            this.user = user;
+            this.latencyNanos = latencyNanos;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    /*
+    Bounded multi-producer / single-consumer ring. Producers claim a sequence number with a CAS on tail and then
+    publish into the claimed slot; the writer thread is the only one that advances head, and treats an empty slot as
+    "not published yet".
+     */
+    private static class RingBuffer {
+        private final AtomicReferenceArray<Event> slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head = 0;
+
+        RingBuffer(int requestedCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+            slots = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        boolean offer(Event event) {
+            long sequence;
+            do {
+                sequence = tail.get();
+                if (sequence - head > mask) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(sequence, sequence + 1));
+            slots.lazySet((int) (sequence & mask), event);
+            return true;
+        }
+
+        // Only ever called from the writer thread
+        Event poll() {
+            int index = (int) (head & mask);
+            Event event = slots.get(index);
+            if (event != null) {
+                slots.lazySet(index, null);
+                head = head + 1;
+            }
+            return event;
+        }
+
+        // True if nothing has been claimed since the writer last polled
+        boolean isEmpty() {
+            return tail.get() == head;
+        }
+    }
+
+    private static class Writer implements Runnable {
+        private final Path file;
+        private final long maxBytes;
+        private final int maxFiles;
+        private final boolean console;
+        private final StringBuilder line = new StringBuilder(256);
+        private BufferedWriter out;
+        private long written;
+        private long reportedDrops;
+
+        Writer(Path file, long maxBytes, int maxFiles, boolean console) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+            this.console = console;
+        }
+
+        /*
+        Parks indefinitely while the buffer is empty instead of polling, so an idle server doesn't wake up every
+        millisecond. parkedWriter is published before the buffer is checked again, so a producer either sees it and
+        unparks us, or its event is seen by that check. A slot that has been claimed but not yet filled is only
+        waited on briefly.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                if (drain()) {
+                    continue;
+                }
+                parkedWriter = Thread.currentThread();
+                if (buffer.isEmpty()) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+                }
+                parkedWriter = null;
+            }
+        }
+
+        // Writes everything queued so far; returns false if there was nothing to write
+        private synchronized boolean drain() {
+            Event event = buffer.poll();
+            if (event == null) {
+                return false;
+            }
+            try {
+                while (event != null) {
+                    write(event);
+                    event = buffer.poll();
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    write(new Event(System.currentTimeMillis(), Level.WARN, Type.SERVER, null, -1,
+                            (drops - reportedDrops) + " log events dropped, buffer full", null));
+                    reportedDrops = drops;
+                }
+                out.flush();
+            } catch (IOException e) {
+                // Nowhere left to log to, fall back to stderr rather than killing the writer thread
+                System.err.println("Event log write failed: " + e);
+            }
+            return true;
+        }
+
+        synchronized void drainAndClose() {
+            drain();
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+            } catch (IOException e) {
+                System.err.println("Event log close failed: " + e);
+            }
+        }
+
+        private void write(Event event) throws IOException {
+            line.setLength(0);
+            line.append("{\"ts\":\"").append(Instant.ofEpochMilli(event.timestamp)).append('"');
+            line.append(",\"level\":\"").append(event.level).append('"');
+            line.append(",\"event\":\"").append(event.type).append('"');
+            if (event.user != null) {
+                appendString("user", event.user);
+            }
+            if (event.latencyNanos >= 0) {
+                line.append(",\"latencyMicros\":").append(TimeUnit.NANOSECONDS.toMicros(event.latencyNanos));
+            }
+            if (event.message != null) {
+                appendString("message", event.message);
+            }
+            if (event.error != null) {
+                StringWriter trace = new StringWriter();
+                event.error.printStackTrace(new PrintWriter(trace));
+                appendString("error", trace.toString());
+            }
+            line.append("}\n");
+
+            if (out == null || written + line.length() > maxBytes) {
+                roll();
+            }
+            out.append(line);
+            written += line.length();
+            if (console) {
+                System.out.print(line);
+            }
+        }
+
+        private void appendString(String key, String value) {
+            line.append(",\"").append(key).append("\":\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': line.append("\\\""); break;
+                    case '\\': line.append("\\\\"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    case '\t': line.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            line.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            line.append(c);
+                        }
+                }
+            }
+            line.append('"');
+        }
+
+        // Shifts chatapp.log -> chatapp.log.1 -> ... and starts a fresh file once the current one is full
+        private void roll() throws IOException {
+            StandardOpenOption mode = StandardOpenOption.APPEND;
+            if (out != null) {
+                out.close();
+                for (int i = maxFiles - 1; i >= 1; i--) {
+                    Path older = Paths.get(file + "." + i);
+                    Path source = i == 1 ? file : Paths.get(file + "." + (i - 1));
+                    if (Files.exists(source)) {
+                        Files.move(source, older, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                written = 0;
+                mode = StandardOpenOption.TRUNCATE_EXISTING;
+            } else {
+                written = Files.exists(file) ? Files.size(file) : 0;
+            }
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+        }
+    }
+}
@@ -134,7 +134,11 @@ public class GameWindow extends JFrame {
 
     private void submitGuess(){
         String guess = guessField.getText().trim().toUpperCase();
-        if (guess.length() == 5) {
+        if (guess.length() == 5 && !client.isKnownWord(guess)) {
+            // Rejected locally, no need to wait for the server to say INVALID_WORD
+            guessField.setText("");
+            showPopup("Invalid word. Try again.");
+        } else if (guess.length() == 5) {
             // Send guess to client, which will forward it to the server
             client.sendGuessToServer(guess);
             guessField.setText("");
@@ -0,0 +1,127 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Per-user throttling for lines coming in from a client. Every line costs one token from the user's overall bucket
+and one from the bucket of the command it maps to. When either bucket runs dry the handler thread sleeps until the
+debt is paid back instead of reading the next line, so a flooding client backs up in its own socket buffer rather
+than in ours.
+
+Rates can be tuned with system properties, e.g. -Dratelimit.guess.rate=2 -Dratelimit.guess.burst=5
+ */
+public class RateLimiter {
+    public enum Command {
+        CHAT("chat", 5, 10),
+        CHALLENGE("challenge", 0.2, 3),
+        GUESS("guess", 2, 5),
+        ALL_USERS("allUsers", 0.5, 2);
+
+        private final String key;
+        private final double defaultRate;
+        private final int defaultBurst;
+
+        Command(String key, double defaultRate, int defaultBurst) {
+            this.key = key;
+            this.defaultRate = defaultRate;
+            this.defaultBurst = defaultBurst;
+        }
+    }
+
+    private final TokenBucket clientBucket;
+    private final Map<Command, TokenBucket> commandBuckets = new EnumMap<>(Command.class);
+    private final Map<Command, AtomicLong> throttleCounts = new EnumMap<>(Command.class);
+    private volatile boolean throttled = false;
+
+    public RateLimiter() {
+        clientBucket = new TokenBucket(rate("client", 20), burst("client", 40));
+        for (Command command : Command.values()) {
+            commandBuckets.put(command, new TokenBucket(rate(command.key, command.defaultRate), burst(command.key, command.defaultBurst)));
+            throttleCounts.put(command, new AtomicLong());
+        }
+    }
+
+    /*
+    Takes a token for the given command, blocking the calling (reader) thread for as long as the client is over budget.
+    Returns true if the caller had to wait.
+     */
+    public boolean acquire(Command command) throws InterruptedException {
+        long waitNanos = Math.max(clientBucket.reserve(), commandBuckets.get(command).reserve());
+        if (waitNanos <= 0) {
+            throttled = false;
+            return false;
+        }
+        throttled = true;
+        throttleCounts.get(command).incrementAndGet();
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return true;
+    }
+
+    // True while the last acquire had to wait; used so the client is only warned once per burst
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    // True once every bucket has refilled, i.e. forgetting this limiter wouldn't give the user any extra budget
+    public boolean isIdle() {
+        if (!clientBucket.isFull()) {
+            return false;
+        }
+        for (TokenBucket bucket : commandBuckets.values()) {
+            if (!bucket.isFull()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Map<Command, Long> getThrottleCounts() {
+        Map<Command, Long> counts = new EnumMap<>(Command.class);
+        for (Map.Entry<Command, AtomicLong> entry : throttleCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private static double rate(String key, double defaultRate) {
+        String value = System.getProperty("ratelimit." + key + ".rate");
+        return value != null ? Double.parseDouble(value) : defaultRate;
+    }
+
+    private static int burst(String key, int defaultBurst) {
+        return Integer.getInteger("ratelimit." + key + ".burst", defaultBurst);
+    }
+
+    // Classic token bucket. Tokens are allowed to go negative so a caller knows exactly how long to back off.
+    private static class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double tokensPerSecond, int capacity) {
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean isFull() {
+            return Math.min(capacity, tokens + (System.nanoTime() - lastRefill) * tokensPerNano) >= capacity;
+        }
+
+        // Takes one token and returns how many nanoseconds the caller has to wait before it was really available
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            tokens -= 1;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-tokens / tokensPerNano);
+        }
+    }
+}
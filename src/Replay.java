@@ -0,0 +1,180 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Replays a capture written by TrafficCapture against a local server and reports throughput and guess latency, so two
+builds can be compared on the same recorded traffic.
+
+    java -cp .:resources Replay <capture file> [speed] [port]
+
+speed 1 (default) keeps the recorded timing, 10 plays ten times faster, 0 sends everything as fast as possible.
+The server is started in this JVM with the capture's random seed so games draw the same answers. That only holds for
+the same dictionary, so a capture recorded against a different one is refused unless -Dreplay.allowDictionaryMismatch
+is set. Rate limits still apply, so accelerated replays may need higher -Dratelimit.* values.
+ */
+public class Replay {
+    private final Map<Integer, Connection> connections = new ConcurrentHashMap<>();
+    private final List<Long> guessLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong linesSent = new AtomicLong();
+    private final AtomicLong linesReceived = new AtomicLong();
+    private final int port;
+
+    private Replay(int port) {
+        this.port = port;
+    }
+
+    // One replayed client. Guesses are answered in order, so a queue of send times is enough to match replies.
+    private class Connection {
+        final Socket socket;
+        final PrintWriter out;
+        final Queue<Long> pendingGuesses = new ConcurrentLinkedQueue<>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            Thread reader = new Thread(this::drain, "replay-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(String line) {
+            if (line.startsWith("GUESS:")) {
+                pendingGuesses.add(System.nanoTime());
+            }
+            out.println(line);
+            linesSent.incrementAndGet();
+        }
+
+        private void drain() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    linesReceived.incrementAndGet();
+                    if (line.startsWith("GUESS_FEEDBACK:") || line.equals("INVALID_WORD") || line.equals("SERVER: No active game.")) {
+                        Long sent = pendingGuesses.poll();
+                        if (sent != null) {
+                            guessLatencies.add(System.nanoTime() - sent);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Socket closed by the replay or the server, nothing left to read
+            }
+        }
+    }
+
+    private void run(TrafficCapture.Recording recording, double speed) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        for (TrafficCapture.Record record : recording.records) {
+            if (speed > 0) {
+                long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(record.atMicros) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            if (record.type == TrafficCapture.OPEN) {
+                connections.put(record.connection, new Connection(new Socket("localhost", port)));
+            } else if (record.type == TrafficCapture.LINE) {
+                Connection connection = connections.get(record.connection);
+                if (connection != null) {
+                    connection.send(record.line);
+                }
+            } else if (record.type == TrafficCapture.CLOSE) {
+                Connection connection = connections.remove(record.connection);
+                if (connection != null) {
+                    connection.socket.close();
+                }
+            }
+        }
+        // Give the server a moment to answer whatever is still in flight
+        TimeUnit.SECONDS.sleep(1);
+        long elapsed = System.nanoTime() - start;
+        for (Connection connection : connections.values()) {
+            connection.socket.close();
+        }
+        report(recording, elapsed);
+    }
+
+    private void report(TrafficCapture.Recording recording, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Replayed %d records (seed %d) in %.2f s%n", recording.records.size(), recording.seed, seconds);
+        System.out.printf("Lines sent: %d (%.1f/s), received: %d (%.1f/s)%n",
+                linesSent.get(), linesSent.get() / seconds, linesReceived.get(), linesReceived.get() / seconds);
+        List<Long> latencies;
+        synchronized (guessLatencies) {
+            latencies = new ArrayList<>(guessLatencies);
+        }
+        if (latencies.isEmpty()) {
+            System.out.println("No guesses answered.");
+            return;
+        }
+        Collections.sort(latencies);
+        System.out.printf("Guess latency (us) over %d guesses: p50 %d, p95 %d, p99 %d, max %d%n", latencies.size(),
+                percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99),
+                TimeUnit.NANOSECONDS.toMicros(latencies.get(latencies.size() - 1)));
+    }
+
+    static long percentile(List<Long> sorted, int percentile) {
+        int index = Math.min(sorted.size() - 1, (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1);
+        return TimeUnit.NANOSECONDS.toMicros(sorted.get(Math.max(0, index)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java Replay <capture file> [speed] [port]");
+            return;
+        }
+        TrafficCapture.Recording recording = TrafficCapture.read(new File(args[0]));
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5999;
+
+        // Must be set before Server is loaded, and the replay itself must not be captured again
+        System.setProperty("random.seed", Long.toString(recording.seed));
+        System.clearProperty("capture.file");
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[]{Integer.toString(port)});
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.ERROR, null, "Replay server failed", e);
+            }
+        }, "replay-server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer(port);
+
+        // Only the word part of "<version>-<crc>" matters, the same lists recompiled under a new version draw the same answers
+        String dictionary = Server.getDictionary().getFingerprint();
+        if (!wordsOf(dictionary).equals(wordsOf(recording.dictionary))) {
+            if (!Boolean.getBoolean("replay.allowDictionaryMismatch")) {
+                System.out.println("Capture was recorded with dictionary " + recording.dictionary + " but the server has "
+                        + dictionary + ", games would draw different answers. Use -Dreplay.allowDictionaryMismatch=true to replay anyway.");
+                System.exit(1);
+            }
+            System.out.println("Warning: replaying a capture from dictionary " + recording.dictionary + " against " + dictionary);
+        }
+        new Replay(port).run(recording, speed);
+        System.exit(0);
+    }
+
+    private static String wordsOf(String fingerprint) {
+        return fingerprint.substring(fingerprint.indexOf('-') + 1);
+    }
+
+    static void waitForServer(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -7,28 +8,42 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class Server {
-    private static Set<ClientHandler> clientHandlers = new HashSet<>();
-    private static HashSet<String> usernames = new HashSet<>();
-    private static Set<String> answerWords = new HashSet<>();
-    private static Set<String> allowedWords = new HashSet<>();
-    private static Map<String,String> activeGames = new HashMap<>();
+    private static Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    private static Set<String> usernames = ConcurrentHashMap.newKeySet();
+    private static Map<String, ClientHandler> clientsByName = new ConcurrentHashMap<>(); // Username index for direct routing
+    private static Map<String, Deque<String>> inboxes = new ConcurrentHashMap<>(); // Direct messages waiting for offline users
+    private static final int INBOX_SIZE = Integer.getInteger("dm.inboxSize", 10); // 0 turns offline delivery off
+    private static final int MAX_INBOXES = Integer.getInteger("dm.maxInboxes", 1000);
+    private static final int MAX_DM_RECIPIENTS = 10;
+    private static final Path DICTIONARY_SNAPSHOT = Paths.get(System.getProperty("dictionary.snapshot", "dictionary.bin"));
+    private static volatile Dictionary dictionary; // Swapped as a whole on reload, never modified in place
+    private static Map<String,String> activeGames = new ConcurrentHashMap<>();
+    private static Map<String, String> opponents = new ConcurrentHashMap<>();
+    private static Map<String, Dictionary> gameDictionaries = new ConcurrentHashMap<>(); // Dictionary each player's game started with
     private static Map<String, Integer> playerGuesses = new ConcurrentHashMap<>();
+    private static Map<String, Integer> bestScores = new ConcurrentHashMap<>(); // Best guess so far (2 per green, 1 per yellow), used for tie-breaks
+    private static Map<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>(); // Kept across reconnects until idle so a client can't reset its budget
+    private static final int MAX_RATE_LIMITERS = Integer.getInteger("ratelimit.maxUsers", 1000);
     private static final int MAX_GUESSES = 5;
+    // Fixed with -Drandom.seed so a replayed capture draws the same answers
+    private static final long RANDOM_SEED = Long.getLong("random.seed", new Random().nextLong());
+    private static final Random random = new Random(RANDOM_SEED);
 
     static {
-        loadWordLists("wordlist.txt", "allowed.txt");
+        dictionary = loadDictionary();
     }
 
     public static void main(String[] args) throws IOException {
         //The server is first started on a known port.
         int portNumber = Integer.parseInt(args[0]);
         ServerSocket serverSocket = new ServerSocket(portNumber);
-        System.out.println("Port: " + portNumber);
-        System.out.println("Server started. Waiting for clients...");
+        EventLog.info(EventLog.Type.SERVER, null, "Server started on port " + portNumber + ". Waiting for clients...");
+        TrafficCapture.startIfConfigured(RANDOM_SEED, dictionary.getFingerprint());
+        startAdminConsole();
 
         while (true) {
             Socket clientSocket = serverSocket.accept(); //The client connects to the server.
-            System.out.println("New client connected: " + clientSocket);
+            EventLog.info(EventLog.Type.CONNECT, null, "New client connected: " + clientSocket);
             ClientHandler clientHandler = new ClientHandler(clientSocket);
             clientHandlers.add(clientHandler);
             Thread clientThread = new Thread(clientHandler);
@@ -36,47 +51,164 @@ public class Server {
         }
     }
 
-    private static void loadWordLists(String answerFile, String allowedFile){
-        try (BufferedReader answerReader = new BufferedReader(new InputStreamReader(Server.class.getResourceAsStream(answerFile)));
-             BufferedReader allowedReader = new BufferedReader(new InputStreamReader(Server.class.getResourceAsStream(allowedFile)))) {
-
-            String line;
-            while((line = answerReader.readLine()) != null){
-                answerWords.add(line.toUpperCase());
-            }
-            while((line = allowedReader.readLine()) != null){
-                allowedWords.add(line.toUpperCase());
+    /*
+    Maps the binary snapshot, (re)compiling it from the word lists on the first run or when the lists no longer match
+    the checksum stored in the snapshot.
+     */
+    private static Dictionary loadDictionary() {
+        try {
+            byte[] answerList = readWordList("wordlist.txt");
+            byte[] allowedList = readWordList("allowed.txt");
+            int version = 1;
+            if (Files.exists(DICTIONARY_SNAPSHOT)) {
+                try {
+                    Dictionary snapshot = Dictionary.map(DICTIONARY_SNAPSHOT);
+                    if (snapshot.getSourceChecksum() == Dictionary.sourceChecksum(answerList, allowedList)) {
+                        return snapshot;
+                    }
+                    version = snapshot.getVersion() + 1;
+                    EventLog.info(EventLog.Type.SERVER, null, "Word lists changed, recompiling " + DICTIONARY_SNAPSHOT);
+                } catch (IOException e) {
+                    EventLog.info(EventLog.Type.SERVER, null, "Rebuilding unreadable " + DICTIONARY_SNAPSHOT + ": " + e.getMessage());
+                }
             }
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            return saveSnapshot(Dictionary.compile(answerList, allowedList, version));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static String selectRandomWord() {
-        List<String> answers = new ArrayList<>(answerWords);
-        return answers.get(new Random().nextInt(answers.size()));
+    // The snapshot only speeds up the next start, so a server that can't write it keeps running on the compiled copy
+    private static Dictionary saveSnapshot(Dictionary compiled) {
+        try {
+            compiled.write(DICTIONARY_SNAPSHOT);
+            return Dictionary.map(DICTIONARY_SNAPSHOT);
+        } catch (IOException e) {
+            EventLog.log(EventLog.Level.WARN, EventLog.Type.SERVER, null, -1,
+                    "Could not write " + DICTIONARY_SNAPSHOT + ", using the word lists from memory", e);
+            return compiled;
+        }
+    }
+
+    private static byte[] readWordList(String file) throws IOException {
+        try (InputStream input = Server.class.getResourceAsStream(file)) {
+            return Dictionary.readWordList(input);
+        }
+    }
+
+    /*
+    Swaps in a new dictionary without touching connections. With no argument the word lists are recompiled into the
+    snapshot as the next version (unless they haven't changed, so clients don't download the same words again),
+    otherwise the given prebuilt snapshot is mapped. Games already running keep the dictionary they started with.
+     */
+    public static Dictionary reloadDictionary(String snapshotFile) throws IOException {
+        Dictionary next;
+        if (snapshotFile == null) {
+            byte[] answerList = readWordList("wordlist.txt");
+            byte[] allowedList = readWordList("allowed.txt");
+            Dictionary current = dictionary;
+            if (Dictionary.sourceChecksum(answerList, allowedList) == current.getSourceChecksum()) {
+                EventLog.info(EventLog.Type.SERVER, null, "Word lists unchanged, keeping dictionary v" + current.getVersion());
+                return current;
+            }
+            next = saveSnapshot(Dictionary.compile(answerList, allowedList, current.getVersion() + 1));
+        } else {
+            next = Dictionary.map(Paths.get(snapshotFile));
+        }
+        dictionary = next;
+        // Let clients know their local copy is out of date
+        broadcastMessage("DICT_VERSION:" + next.getFingerprint(), null);
+        return next;
+    }
+
+    public static Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    // Reads admin commands from the server's standard input: "reload", "reload /path/to/dictionary.bin" or "throttle"
+    private static void startAdminConsole() {
+        Thread console = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+                String command;
+                while ((command = reader.readLine()) != null) {
+                    command = command.trim();
+                    if (command.equals("reload") || command.startsWith("reload ")) {
+                        String snapshotFile = command.length() > 6 ? command.substring(7).trim() : null;
+                        try {
+                            Dictionary reloaded = reloadDictionary(snapshotFile);
+                            System.out.println("Dictionary v" + reloaded.getVersion() + " loaded.");
+                        } catch (IOException e) {
+                            System.out.println("Dictionary reload failed: " + e.getMessage());
+                        }
+                    } else if (command.equals("throttle")) {
+                        for (Map.Entry<String, Map<RateLimiter.Command, Long>> entry : getThrottleCounts().entrySet()) {
+                            System.out.println(entry.getKey() + ": " + entry.getValue());
+                        }
+                    } else if (!command.isEmpty()) {
+                        System.out.println("Unknown command: " + command);
+                    }
+                }
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.ERROR, null, "Admin console failed", e);
+            }
+        }, "admin-console");
+        console.setDaemon(true);
+        console.start();
+    }
+
+    private static String selectRandomWord(Dictionary words) {
+        return words.randomAnswer(random);
     }
 
     public static void startGame(ClientHandler player1, ClientHandler player2) {
-        String answer = selectRandomWord();
+        startGame(player1, player2, true);
+    }
+
+    // Tournament matches pass announce = false so hundreds of games starting at once don't each broadcast to everyone
+    public static void startGame(ClientHandler player1, ClientHandler player2, boolean announce) {
+        Dictionary words = dictionary;
+        String answer = selectRandomWord(words);
         activeGames.put(player1.getUsername(), answer);
         activeGames.put(player2.getUsername(), answer);
+        gameDictionaries.put(player1.getUsername(), words);
+        gameDictionaries.put(player2.getUsername(), words);
+        opponents.put(player1.getUsername(), player2.getUsername());
+        opponents.put(player2.getUsername(), player1.getUsername());
         playerGuesses.put(player1.getUsername(), 0);
         playerGuesses.put(player2.getUsername(), 0);
+        bestScores.put(player1.getUsername(), 0);
+        bestScores.put(player2.getUsername(), 0);
 
 
-        player1.sendMessage("GAME_START");
-        player2.sendMessage("GAME_START");
+        // The fingerprint tells clients which dictionary this game's guesses are checked against, even after a reload
+        player1.sendMessage("GAME_START:" + words.getFingerprint());
+        player2.sendMessage("GAME_START:" + words.getFingerprint());
         player1.sendMessage("ANSWER:" + answer); // Send the answer to initialize client UI
         player2.sendMessage("ANSWER:" + answer);
 
+        if (!announce) {
+            return;
+        }
         broadcastMessage(player1.getUsername() + " and " + player2.getUsername() + " have started a game of WordWhiz against each other. To challenge a user, type \"/challenge (username)\".", null);
     }
 
+    // Same as above by username, for callers outside this file; false if either player is offline
+    public static boolean startGame(String player1, String player2, boolean announce) {
+        ClientHandler first = findClientHandler(player1);
+        ClientHandler second = findClientHandler(player2);
+        if (first == null || second == null) {
+            return false;
+        }
+        startGame(first, second, announce);
+        return true;
+    }
+
     public static String validateGuess(String guess) {
-        if (answerWords.contains(guess) || allowedWords.contains(guess)) {
+        return validateGuess(dictionary, guess);
+    }
+
+    public static String validateGuess(Dictionary words, String guess) {
+        if (words.contains(guess)) {
             return "VALID";
         } else {
             return "INVALID";
@@ -104,7 +236,7 @@ public class Server {
             return;
         }
 
-        String validation = validateGuess(guessedWord);
+        String validation = validateGuess(gameDictionaries.getOrDefault(player.getUsername(), dictionary), guessedWord);
         if (validation.equals("INVALID")) {
             player.sendMessage("INVALID_WORD");
             return;
@@ -115,54 +247,124 @@ public class Server {
 
         String feedback = generateFeedback(answer, guessedWord);
         player.sendMessage("GUESS_FEEDBACK:" + guessedWord + ":"  + feedback);
+        bestScores.merge(player.getUsername(), scoreFeedback(feedback), Math::max);
 
         if (guessedWord.equals(answer) && activeGames.containsKey(player.getUsername())) {
             player.sendMessage("WIN");
             endGameForBothPlayers(player, true);
+            return;
         }
 
         ClientHandler opponent = findOpponent(player);
-        if (currentGuesses >= MAX_GUESSES && opponent != null && playerGuesses.get(opponent.getUsername()) >= MAX_GUESSES) {
+        Integer opponentGuesses = opponent != null ? playerGuesses.get(opponent.getUsername()) : null;
+        if (currentGuesses >= MAX_GUESSES && opponentGuesses != null && opponentGuesses >= MAX_GUESSES) {
             endGameForBothPlayers(player, false); // Call stalemate logic
         }
     }
 
+    private static int scoreFeedback(String feedback) {
+        int score = 0;
+        for (int i = 0; i < feedback.length(); i++) {
+            score += feedback.charAt(i) == 'G' ? 2 : feedback.charAt(i) == 'Y' ? 1 : 0;
+        }
+        return score;
+    }
+
     private static void endGameForBothPlayers(ClientHandler winner, boolean guessedCorrectly){
+        endGameForBothPlayers(winner, guessedCorrectly, "Both players ran out of guesses.");
+    }
+
+    private static void endGameForBothPlayers(ClientHandler winner, boolean guessedCorrectly, String stalemateReason){
         ClientHandler otherPlayer = findOpponent(winner);
+        String otherName = opponents.get(winner.getUsername());
         String answer = activeGames.get(winner.getUsername());
 
-        if (answer == null) {
+        if (answer == null || !claimGame(winner.getUsername(), otherName, answer)) {
             // The game has already been marked as ended, no further action needed
             return;
         }
+        boolean tournamentMatch = Tournament.isInMatch(winner.getUsername());
 
         if (guessedCorrectly) {
             // Standard win condition
             if (otherPlayer != null) {
                 winner.sendMessage("WINNER: You won by guessing the word first! The word was: " + answer);
                 otherPlayer.sendMessage("LOSER: " + winner.getUsername() + " guessed the word first! The word was: " + answer);
-                broadcastMessage("SERVER: " + winner.getUsername() + " has defeated " + otherPlayer.getUsername() +
-                        " in WordWhiz by guessing the word '" + answer + "'.", null);
+                if (!tournamentMatch) {
+                    broadcastMessage("SERVER: " + winner.getUsername() + " has defeated " + otherPlayer.getUsername() +
+                            " in WordWhiz by guessing the word '" + answer + "'.", null);
+                }
             } else {
                 winner.sendMessage("WINNER: You won! The word was: " + answer + ". Opponent is no longer available.");
-                broadcastMessage("SERVER: " + winner.getUsername() + " won in WordWhiz by guessing the word '" + answer + "'.", null);
+                if (!tournamentMatch) {
+                    broadcastMessage("SERVER: " + winner.getUsername() + " won in WordWhiz by guessing the word '" + answer + "'.", null);
+                }
             }
         } else {
-            // Stalemate condition: Both players ran out of guesses
-            winner.sendMessage("STALEMATE: Both players ran out of guesses. The word was: " + answer);
+            // Stalemate condition: Both players ran out of guesses (or time)
+            winner.sendMessage("STALEMATE: " + stalemateReason + " The word was: " + answer);
             if (otherPlayer != null) {
-                otherPlayer.sendMessage("STALEMATE: Both players ran out of guesses. The word was: " + answer);
+                otherPlayer.sendMessage("STALEMATE: " + stalemateReason + " The word was: " + answer);
             }
-            broadcastMessage("SERVER: The game between " + winner.getUsername() + " and " + otherPlayer.getUsername() + " ended in a stalemate. The word was: '" + answer + "'.", null);
+            if (!tournamentMatch) {
+                broadcastMessage("SERVER: The game between " + winner.getUsername() + " and " + otherName + " ended in a stalemate. The word was: '" + answer + "'.", null);
+            }
+        }
+
+        int winnerScore = bestScores.getOrDefault(winner.getUsername(), 0);
+        int otherScore = otherName != null ? bestScores.getOrDefault(otherName, 0) : 0;
+        clearGame(winner.getUsername(), otherName);
+        if (tournamentMatch) {
+            Tournament.recordResult(winner.getUsername(), otherName, guessedCorrectly, winnerScore, otherScore);
         }
+    }
 
-        // Clean up game data for both players
-        activeGames.remove(winner.getUsername());
+    /*
+    Makes sure only one thread ends a given game, even when both players finish at the same moment. Whoever removes
+    the entry of the alphabetically first player owns the cleanup.
+     */
+    private static boolean claimGame(String player, String opponent, String answer) {
+        String key = opponent == null || player.compareTo(opponent) < 0 ? player : opponent;
+        return activeGames.remove(key, answer);
+    }
+
+    // Clean up game data for both players
+    private static void clearGame(String player, String opponent) {
+        for (String name : new String[]{player, opponent}) {
+            if (name != null) {
+                activeGames.remove(name);
+                opponents.remove(name);
+                playerGuesses.remove(name);
+                bestScores.remove(name);
+                gameDictionaries.remove(name);
+            }
+        }
+    }
+
+    // Ends a game that ran out of time as a stalemate, so tournament matches fall back to the best guess tie-break
+    public static void timeOutGame(String username) {
+        ClientHandler player = findClientHandler(username);
+        if (player != null) {
+            endGameForBothPlayers(player, false, "Time is up.");
+        }
+    }
+
+    // Called when a player disconnects mid game; the opponent wins by forfeit
+    public static void forfeitGame(ClientHandler leaver) {
+        String otherName = opponents.get(leaver.getUsername());
+        String answer = activeGames.get(leaver.getUsername());
+        if (answer == null || !claimGame(leaver.getUsername(), otherName, answer)) {
+            return;
+        }
+        boolean tournamentMatch = Tournament.isInMatch(leaver.getUsername());
+        ClientHandler otherPlayer = otherName != null ? findClientHandler(otherName) : null;
         if (otherPlayer != null) {
-            activeGames.remove(otherPlayer.getUsername());
-            playerGuesses.remove(otherPlayer.getUsername());
+            otherPlayer.sendMessage("WINNER: " + leaver.getUsername() + " left the game, you win by forfeit! The word was: " + answer);
+        }
+        clearGame(leaver.getUsername(), otherName);
+        if (tournamentMatch && otherName != null) {
+            Tournament.recordResult(otherName, leaver.getUsername(), true, 0, 0);
         }
-        playerGuesses.remove(winner.getUsername());
     }
 
     // Method to broadcast message to all clients
@@ -194,30 +396,140 @@ public class Server {
     // Method to remove a client from the client handler list
     public static synchronized void removeClient(ClientHandler clientHandler) {
         clientHandlers.remove(clientHandler);
-        usernames.remove(clientHandler.getUsername());
+        if (clientHandler.getUsername() != null) {
+            usernames.remove(clientHandler.getUsername());
+            clientsByName.remove(clientHandler.getUsername(), clientHandler);
+            // Nothing to remember once the buckets have refilled, a reconnect would get the same budget anyway
+            rateLimiters.computeIfPresent(clientHandler.getUsername(), (name, limiter) -> limiter.isIdle() ? null : limiter);
+        }
         broadcastUserList();
     }
 
-    public static HashSet<String> getUsernames() {
+    /*
+    Called once the handshake has given the client a name; also hands over anything left in its inbox. Returns false
+    without registering anything if the name is already online, so a second connection can't take over its messages.
+     */
+    public static boolean registerUsername(ClientHandler clientHandler) {
+        String username = clientHandler.getUsername();
+        if (clientsByName.putIfAbsent(username, clientHandler) != null) {
+            return false;
+        }
+        usernames.add(username);
+        deliverInbox(clientHandler);
+        return true;
+    }
+
+    private static void deliverInbox(ClientHandler clientHandler) {
+        Deque<String> inbox = inboxes.remove(clientHandler.getUsername());
+        if (inbox != null) {
+            synchronized (inbox) {
+                for (String message : inbox) {
+                    clientHandler.sendMessage(message);
+                }
+                inbox.clear();
+            }
+        }
+    }
+
+    public static Set<String> getUsernames() {
         return usernames;
     }
 
-    public static synchronized ClientHandler findClientHandler(String username){
-        for (ClientHandler client : clientHandlers){
-            if(client.getUsername().equals(username)){
-                return client;
+    /*
+    Sends a message straight to each recipient's handler through the username index, without going near the
+    broadcast lock. Recipients that aren't online get it queued in a small inbox (oldest dropped first) that is
+    delivered when they next join.
+     */
+    public static void sendDirectMessage(ClientHandler sender, List<String> recipients, String message) {
+        if (recipients.isEmpty() || recipients.size() > MAX_DM_RECIPIENTS) {
+            sender.sendMessage("SERVER: A direct message needs between 1 and " + MAX_DM_RECIPIENTS + " recipients.");
+            return;
+        }
+        String header = recipients.size() == 1
+                ? sender.getUsername() + " whispers: "
+                : sender.getUsername() + " (to " + String.join(", ", recipients) + "): ";
+        for (String recipient : recipients) {
+            ClientHandler handler = clientsByName.get(recipient);
+            if (handler != null) {
+                handler.sendMessage(header + message);
+            } else if (deliverLater(recipient, header + message)) {
+                sender.sendMessage("SERVER: " + recipient + " is offline and will get your message when they join.");
+            } else {
+                sender.sendMessage("SERVER: " + recipient + " is not online.");
             }
         }
-        return null;
     }
 
-    private static ClientHandler findOpponent(ClientHandler player){
-        for (Map.Entry<String, String> entry : activeGames.entrySet()){
-            if (!entry.getKey().equals(player.getUsername()) && entry.getValue().equals(activeGames.get(player.getUsername()))){
-                return findClientHandler(entry.getKey());
+    private static boolean deliverLater(String recipient, String message) {
+        if (INBOX_SIZE <= 0 || (inboxes.size() >= MAX_INBOXES && !inboxes.containsKey(recipient))) {
+            return false;
+        }
+        while (true) {
+            Deque<String> inbox = inboxes.computeIfAbsent(recipient, name -> new ArrayDeque<>());
+            synchronized (inbox) {
+                // deliverInbox may have taken this inbox out of the map since we looked it up, anything added now would be lost
+                if (inboxes.get(recipient) != inbox) {
+                    continue;
+                }
+                if (inbox.size() >= INBOX_SIZE) {
+                    inbox.removeFirst();
+                }
+                inbox.addLast("(while you were away) " + message);
             }
+            break;
         }
-        return null;
+        // The recipient may have joined while we were queueing
+        ClientHandler joined = clientsByName.get(recipient);
+        if (joined != null) {
+            deliverInbox(joined);
+        }
+        return true;
+    }
+
+    public static RateLimiter getRateLimiter(String username) {
+        if (rateLimiters.size() >= MAX_RATE_LIMITERS) {
+            evictIdleRateLimiters();
+        }
+        return rateLimiters.computeIfAbsent(username, name -> new RateLimiter());
+    }
+
+    // Drops limiters of offline users whose buckets have refilled since they left
+    private static void evictIdleRateLimiters() {
+        rateLimiters.entrySet().removeIf(entry -> !clientsByName.containsKey(entry.getKey()) && entry.getValue().isIdle());
+    }
+
+    // Throttle counters for online users and for offline users whose buckets haven't refilled yet
+    public static Map<String, Map<RateLimiter.Command, Long>> getThrottleCounts() {
+        Map<String, Map<RateLimiter.Command, Long>> counts = new TreeMap<>();
+        for (Map.Entry<String, RateLimiter> entry : rateLimiters.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().getThrottleCounts());
+        }
+        return counts;
+    }
+
+    public static ClientHandler findClientHandler(String username){
+        return username != null ? clientsByName.get(username) : null;
+    }
+
+    public static boolean isOnline(String username) {
+        return findClientHandler(username) != null;
+    }
+
+    // Sends to a user if they are connected, otherwise drops the message
+    public static void sendTo(String username, String message) {
+        ClientHandler handler = findClientHandler(username);
+        if (handler != null) {
+            handler.sendMessage(message);
+        }
+    }
+
+    private static ClientHandler findOpponent(ClientHandler player){
+        String opponent = opponents.get(player.getUsername());
+        return opponent != null ? findClientHandler(opponent) : null;
+    }
+
+    public static boolean isInGame(String username) {
+        return activeGames.containsKey(username);
     }
 
     public static void handleWin(ClientHandler winner){
@@ -230,6 +542,9 @@ class ClientHandler implements Runnable {
     private PrintWriter out;
     private BufferedReader in;
     private String username;
+    private CompressedLines.Encoder compressor; // Only set if the client asked for compression at handshake
+    private final int connectionId = TrafficCapture.newConnectionId();
+    private volatile boolean closed = false; // Other threads may still be sending to us after the socket is gone
 
     // NEW
     private static ConcurrentHashMap<String, ClientHandler> pendingChallenges = new ConcurrentHashMap<>();
@@ -242,22 +557,50 @@ class ClientHandler implements Runnable {
 
     @Override
     public void run() {
+        TrafficCapture.opened(connectionId);
         try {
-            this.username = in.readLine();
+            this.username = readLine();
+            boolean compressionRequested = false;
+            if (CompressedLines.CAPABILITY.equals(username)) {
+                // Client offered compression before sending its username
+                compressionRequested = true;
+                this.username = readLine();
+            }
             if(username == null || username.trim().isEmpty()){
                 out.println("ERROR: Username cannot be blank.");
                 clientSocket.close();
                 return;
             }
+            if (!Server.registerUsername(this)) {
+                out.println("ERROR: Username taken");
+                username = null; // Not ours, so the cleanup below must not touch the online user's state
+                Server.removeClient(this);
+                clientSocket.close();
+                return;
+            }
+            if (compressionRequested) {
+                out.println(CompressedLines.CAPABILITY);
+                compressor = new CompressedLines.Encoder(username, CompressedLines.LEVEL);
+            }
 
-            Server.getUsernames().add(username);
             Server.broadcastUserList();
+            sendMessage("DICT_VERSION:" + Server.getDictionary().getFingerprint()); // Client asks with /dict if it has no copy cached
 
-            System.out.println(username + " has joined the chat.");
+            EventLog.info(EventLog.Type.JOIN, username, username + " has joined the chat.");
             Server.broadcastMessage(username + " has joined the chat.", this);
 
+            RateLimiter rateLimiter = Server.getRateLimiter(username);
+
             String message;
-            while ((message = in.readLine()) != null) {
+            while ((message = readLine()) != null) {
+                // Stops reading from this socket until the client is back within its budget
+                boolean wasThrottled = rateLimiter.isThrottled();
+                if (rateLimiter.acquire(commandFor(message)) && !wasThrottled) {
+                    sendMessage("SERVER: You are sending messages too quickly. Slow down.");
+                }
+
+                long received = System.nanoTime();
+                EventLog.Type eventType = message.startsWith("GUESS:") ? EventLog.Type.GUESS : EventLog.Type.COMMAND;
 
                 if (message.equals("WIN")) {
                     // Handle win notification from client
@@ -279,32 +622,93 @@ class ClientHandler implements Runnable {
                     Server.broadcastMessage("SERVER: Goodbye, " + username, this);
                 }else if(message.equals("/allUsers")){
                     Server.broadcastMessage("SERVER: " + Server.getUsernames().toString(), this);
+                }else if(message.equals("/dict")){
+                    Dictionary words = Server.getDictionary();
+                    sendMessage("DICT:" + words.getFingerprint() + ":" + words.getEncodedWords());
+                }else if(message.startsWith("/w ")){
+                    handleWhisper(message.substring(3).trim());
+                }else if(message.startsWith("/tournament")){
+                    Tournament.handleCommand(username, message.substring(11));
+                }else if(message.equals("/throttleStats")){
+                    sendMessage("SERVER: Throttled " + rateLimiter.getThrottleCounts());
                 }else{
-                    System.out.println(username + ": " + message);
                     Server.broadcastMessage(username + ": " + message, this);
+                    eventType = EventLog.Type.CHAT;
                 }
+                // Chat is logged at INFO, game traffic and commands only at DEBUG
+                EventLog.log(eventType == EventLog.Type.CHAT ? EventLog.Level.INFO : EventLog.Level.DEBUG,
+                        eventType, username, System.nanoTime() - received, message, null);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error(EventLog.Type.ERROR, username, "Connection error", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             try {
                 if(username != null){
+                    Server.forfeitGame(this);
+                    Tournament.playerLeft(username);
                     Server.broadcastMessage(username + " has left the chat.", this);
-                    System.out.println(username + " has disconnected from the server.");
+                    EventLog.info(EventLog.Type.LEAVE, username, username + " has disconnected from the server.");
                     Server.removeClient(this);
                 }
+                closed = true;
                 clientSocket.close();
+                TrafficCapture.closed(connectionId);
+                if (compressor != null) {
+                    // Under the same lock as sendMessage so an encode in flight finishes before the deflater is ended
+                    synchronized (out) {
+                        compressor.close();
+                    }
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.error(EventLog.Type.ERROR, username, "Failed to close connection", e);
             }
         }
     }
 
+    // Every inbound line goes through here so it can be captured for replays
+    private String readLine() throws IOException {
+        String line = in.readLine();
+        TrafficCapture.received(connectionId, line);
+        return line;
+    }
+
+    // Maps an incoming line to the rate limit bucket it is charged against
+    private static RateLimiter.Command commandFor(String message) {
+        if (message.startsWith("GUESS:")) {
+            return RateLimiter.Command.GUESS;
+        } else if (message.startsWith("/challenge ") || message.startsWith("/tournament")) {
+            return RateLimiter.Command.CHALLENGE;
+        } else if (message.equals("/allUsers")) {
+            return RateLimiter.Command.ALL_USERS;
+        }
+        return RateLimiter.Command.CHAT;
+    }
+
+    // "/w bob hi" or "/w bob,carol hi" for a small group
+    private void handleWhisper(String args){
+        int split = args.indexOf(' ');
+        if (split < 0) {
+            sendMessage("SERVER: Usage: /w <user>[,<user>...] <message>");
+            return;
+        }
+        List<String> recipients = new ArrayList<>();
+        for (String recipient : args.substring(0, split).split(",")) {
+            if (!recipient.isEmpty() && !recipients.contains(recipient)) {
+                recipients.add(recipient);
+            }
+        }
+        Server.sendDirectMessage(this, recipients, args.substring(split + 1).trim());
+    }
+
     private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1); //https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/ScheduledExecutorService.html
     private void handleChallenge(String challengedUsername){
         ClientHandler challengedPlayer = Server.findClientHandler(challengedUsername);
 
-        if(challengedPlayer != null && !challengedPlayer.equals(this)){
+        if (Tournament.isPlaying(username) || Tournament.isPlaying(challengedUsername)) {
+            sendMessage("SERVER: Tournament players can't take other challenges until they are out.");
+        } else if(challengedPlayer != null && !challengedPlayer.equals(this)){
             pendingChallenges.put(challengedUsername, this);
             challengedPlayer.sendMessage("SERVER: " + username + " has challenged you to a game! Type /y to accept or /n to decline.");
             sendMessage("SERVER: Challenge sent to " + challengedUsername);
@@ -333,7 +737,11 @@ class ClientHandler implements Runnable {
     private void handleAcceptChallenge(){// NEW
         ClientHandler challenger = pendingChallenges.get(username);
 
-        if(challenger != null){
+        if(challenger != null && (Tournament.isPlaying(username) || Tournament.isPlaying(challenger.getUsername()))){
+            sendMessage("SERVER: Tournament players can't take other challenges until they are out.");
+        }else if(challenger != null && (Server.isInGame(username) || Server.isInGame(challenger.getUsername()))){
+            sendMessage("SERVER: One of you is already in a game.");
+        }else if(challenger != null){
             sendMessage("SERVER: You accepted the challenge from " + challenger.getUsername());
             challenger.sendMessage("SERVER: " + username + " has accepted your challenge! Starting game...");
 
@@ -357,7 +765,19 @@ class ClientHandler implements Runnable {
     }
 
     public void sendMessage(String message) {
-        out.println(message);
+        if (closed) {
+            return;
+        }
+        if (compressor != null && compressor.shouldCompress(message)) {
+            // Compressed lines have to reach the client in the order they were encoded
+            synchronized (out) {
+                if (!closed) {
+                    out.println(compressor.encode(message));
+                }
+            }
+        } else {
+            out.println(message);
+        }
     }
 
     public String getUsername(){
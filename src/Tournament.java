@@ -0,0 +1,485 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+Tournament mode, driven by chat commands:
+    /tournament create [single|swiss] [rounds]   opens sign ups (single elimination by default)
+    /tournament join                             signs up, join order is the seeding
+    /tournament leave                            withdraws before the start
+    /tournament start                            organizer only, launches round 1
+    /tournament cancel                           organizer only, calls off a tournament that hasn't started
+    /tournament status
+
+A tournament that hasn't started is also cancelled when its organizer disconnects, and entrants who disconnect are
+dropped from it, so sign ups can never block challenges for good.
+
+Every match in a round is started at the same time through Server.startGame on a small launcher pool. Results come
+back from Server.endGameForBothPlayers through recordResult; each match can only be reported once and the thread that
+reports the last match of a round pairs and launches the next one, so rounds advance without any global lock.
+
+Each match has a time limit (-Dtournament.matchSeconds, default 180, 0 for none) after which it ends as a stalemate,
+so one idle pair can't hold up a whole round.
+
+Stalemates are broken by the better best guess (2 points per green, 1 per yellow). If that is level too, the higher
+seed advances in single elimination and the players split the point in Swiss.
+ */
+public class Tournament {
+    public enum Format { SINGLE, SWISS }
+
+    private enum State { OPEN, RUNNING, FINISHED }
+
+    private static final AtomicReference<Tournament> current = new AtomicReference<>();
+    private static final int MATCH_SECONDS = Integer.getInteger("tournament.matchSeconds", 180);
+    private static final ScheduledExecutorService launcher = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "tournament-launcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final String organizer;
+    private final Format format;
+    private final int requestedRounds;
+    private final List<String> entrants = new CopyOnWriteArrayList<>(); // Join order, index is the seed
+    private final Map<String, Integer> seeds = new HashMap<>(); // Filled once at start, read only afterwards
+    private final Map<String, Double> points = new ConcurrentHashMap<>();
+    private final Map<String, Integer> tieBreaks = new ConcurrentHashMap<>(); // Sum of best guess scores, for Swiss standings
+    private final Set<String> playedPairs = ConcurrentHashMap.newKeySet();
+    private final Map<String, Match> matches = new ConcurrentHashMap<>(); // Current round, by player
+    private final AtomicInteger pendingMatches = new AtomicInteger();
+    private volatile State state = State.OPEN;
+    private volatile List<Match> roundMatches = Collections.emptyList();
+    private volatile List<String> alive = Collections.emptyList(); // Single elimination: players still in, in seed order
+    private volatile int round = 0;
+    private volatile int totalRounds;
+
+    private Tournament(String organizer, Format format, int requestedRounds) {
+        this.organizer = organizer;
+        this.format = format;
+        this.requestedRounds = requestedRounds;
+    }
+
+    private static class Match {
+        final String first;
+        final String second; // null for a bye
+        final AtomicBoolean finished = new AtomicBoolean();
+        volatile String winner; // null while running, or after a Swiss draw
+
+        Match(String first, String second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        String opponentOf(String player) {
+            return player.equals(first) ? second : first;
+        }
+    }
+
+    // Everything in here goes by username, Server looks up the connections
+    public static void handleCommand(String player, String args) {
+        String[] parts = args.trim().split("\\s+");
+        switch (parts[0]) {
+            case "create":
+                create(player, parts);
+                break;
+            case "join":
+                join(player);
+                break;
+            case "leave":
+                leave(player);
+                break;
+            case "start":
+                start(player);
+                break;
+            case "cancel":
+                cancel(player);
+                break;
+            case "status":
+                status(player);
+                break;
+            default:
+                sendTo(player, "SERVER: Usage: /tournament create [single|swiss] [rounds] | join | leave | start | cancel | status");
+        }
+    }
+
+    private static void create(String player, String[] parts) {
+        Format format = Format.SINGLE;
+        int rounds = 0;
+        try {
+            if (parts.length > 1) {
+                format = Format.valueOf(parts[1].toUpperCase());
+            }
+            if (parts.length > 2) {
+                rounds = Integer.parseInt(parts[2]);
+            }
+        } catch (IllegalArgumentException e) {
+            sendTo(player, "SERVER: Usage: /tournament create [single|swiss] [rounds]");
+            return;
+        }
+        Tournament tournament = new Tournament(player, format, rounds);
+        Tournament existing = current.get();
+        if ((existing != null && existing.state != State.FINISHED) || !current.compareAndSet(existing, tournament)) {
+            sendTo(player, "SERVER: A tournament is already in progress.");
+            return;
+        }
+        Server.broadcastMessage("SERVER: " + player + " created a " + (format == Format.SWISS ? "Swiss" : "single elimination")
+                + " WordWhiz tournament. Type \"/tournament join\" to enter.", null);
+    }
+
+    private static void join(String player) {
+        Tournament tournament = current.get();
+        if (tournament == null) {
+            sendTo(player, "SERVER: There is no tournament open for sign ups.");
+        } else {
+            tournament.signUp(player);
+        }
+    }
+
+    // Synchronized with begin() so nobody slips in after the field has been seeded
+    private synchronized void signUp(String player) {
+        if (state != State.OPEN) {
+            sendTo(player, "SERVER: There is no tournament open for sign ups.");
+        } else if (Server.isInGame(player)) {
+            sendTo(player, "SERVER: Finish your current game before joining the tournament.");
+        } else if (entrants.contains(player)) {
+            sendTo(player, "SERVER: You have already joined the tournament.");
+        } else {
+            entrants.add(player);
+            sendTo(player, "SERVER: You joined the tournament as seed #" + entrants.size() + ".");
+        }
+    }
+
+    private static void leave(String player) {
+        Tournament tournament = current.get();
+        if (tournament == null || !tournament.withdraw(player)) {
+            sendTo(player, "SERVER: You are not signed up for a tournament that hasn't started.");
+        } else {
+            sendTo(player, "SERVER: You left the tournament.");
+        }
+    }
+
+    private static void cancel(String player) {
+        Tournament tournament = current.get();
+        if (tournament == null || tournament.state != State.OPEN) {
+            sendTo(player, "SERVER: There is no tournament waiting to start.");
+        } else if (!tournament.organizer.equals(player)) {
+            sendTo(player, "SERVER: Only " + tournament.organizer + " can cancel the tournament.");
+        } else {
+            tournament.callOff(player + " cancelled the tournament.");
+        }
+    }
+
+    // Called when a user disconnects. Running tournaments deal with absent players when their match launches.
+    public static void playerLeft(String username) {
+        Tournament tournament = current.get();
+        if (tournament == null) {
+            return;
+        }
+        if (tournament.organizer.equals(username)) {
+            tournament.callOff(username + " left, so the tournament that hadn't started yet is cancelled.");
+        } else {
+            tournament.withdraw(username);
+        }
+    }
+
+    // Both synchronized with signUp() and begin() so they can't interleave with seeding
+    private synchronized boolean withdraw(String player) {
+        return state == State.OPEN && entrants.remove(player);
+    }
+
+    private synchronized void callOff(String reason) {
+        if (state != State.OPEN) {
+            return;
+        }
+        state = State.FINISHED;
+        Server.broadcastMessage("SERVER: " + reason, null);
+    }
+
+    private static void start(String player) {
+        Tournament tournament = current.get();
+        if (tournament == null || tournament.state != State.OPEN) {
+            sendTo(player, "SERVER: There is no tournament waiting to start.");
+        } else if (!tournament.organizer.equals(player)) {
+            sendTo(player, "SERVER: Only " + tournament.organizer + " can start the tournament.");
+        } else if (tournament.entrants.size() < 2) {
+            sendTo(player, "SERVER: At least two players need to join first.");
+        } else {
+            tournament.begin();
+        }
+    }
+
+    private static void status(String player) {
+        Tournament tournament = current.get();
+        if (tournament == null) {
+            sendTo(player, "SERVER: No tournament.");
+            return;
+        }
+        String roundInfo = tournament.state == State.RUNNING
+                ? ", round " + tournament.round + " of " + tournament.totalRounds + ", " + tournament.pendingMatches.get() + " matches still playing"
+                : "";
+        sendTo(player, "SERVER: Tournament (" + tournament.format + ", " + tournament.state + ") with "
+                + tournament.entrants.size() + " players" + roundInfo + ".");
+    }
+
+    // True while the player is in an unfinished tournament match; those games are not announced to everyone
+    public static boolean isInMatch(String username) {
+        Tournament tournament = current.get();
+        if (tournament == null) {
+            return false;
+        }
+        Match match = tournament.matches.get(username);
+        return match != null && !match.finished.get();
+    }
+
+    /*
+    True if the player has signed up for a tournament that hasn't started yet, or is still competing in a running one,
+    and so shouldn't start or accept other challenges.
+     */
+    public static boolean isPlaying(String username) {
+        Tournament tournament = current.get();
+        if (tournament == null || tournament.state == State.FINISHED) {
+            return false;
+        }
+        if (tournament.state == State.OPEN || tournament.format == Format.SWISS) {
+            return tournament.entrants.contains(username);
+        }
+        return tournament.alive.contains(username);
+    }
+
+    /*
+    Reports the end of a tournament game. decided is false for a stalemate, in which case the best guess scores are
+    used as the tie-break. Only the first report for a match counts.
+     */
+    public static void recordResult(String first, String second, boolean decided, int firstScore, int secondScore) {
+        Tournament tournament = current.get();
+        if (tournament != null) {
+            tournament.record(first, second, decided, firstScore, secondScore);
+        }
+    }
+
+    private synchronized void begin() {
+        if (state != State.OPEN) {
+            return;
+        }
+        state = State.RUNNING;
+        int players = entrants.size();
+        int rounds = 32 - Integer.numberOfLeadingZeros(players - 1); // ceil(log2(players))
+        totalRounds = format == Format.SWISS && requestedRounds > 0 ? Math.min(requestedRounds, players - 1) : rounds;
+        for (String entrant : entrants) {
+            seeds.put(entrant, seeds.size());
+            points.put(entrant, 0.0);
+            tieBreaks.put(entrant, 0);
+        }
+        alive = new ArrayList<>(entrants);
+        startRound();
+    }
+
+    private void record(String first, String second, boolean decided, int firstScore, int secondScore) {
+        Match match = matches.get(first);
+        if (match == null || (second != null && !second.equals(match.opponentOf(first))) || !match.finished.compareAndSet(false, true)) {
+            return;
+        }
+        String opponent = match.opponentOf(first);
+        if (decided || firstScore != secondScore) {
+            match.winner = !decided && secondScore > firstScore ? opponent : first;
+        } else if (format == Format.SINGLE) {
+            match.winner = seedOf(first) < seedOf(opponent) ? first : opponent;
+        }
+        tieBreaks.merge(first, firstScore, Integer::sum);
+        tieBreaks.merge(opponent, secondScore, Integer::sum);
+        if (match.winner == null) {
+            points.merge(first, 0.5, Double::sum);
+            points.merge(opponent, 0.5, Double::sum);
+        } else {
+            points.merge(match.winner, 1.0, Double::sum);
+        }
+        notifyResult(match, decided);
+
+        if (pendingMatches.decrementAndGet() == 0) {
+            finishRound();
+        }
+    }
+
+    private void notifyResult(Match match, boolean decided) {
+        String tieBreak = decided ? "" : " on the tie-break";
+        for (String player : new String[]{match.first, match.second}) {
+            if (match.winner == null) {
+                sendTo(player, "SERVER: Tournament round " + round + ": draw against " + match.opponentOf(player) + ".");
+            } else if (match.winner.equals(player)) {
+                sendTo(player, "SERVER: Tournament round " + round + ": you beat " + match.opponentOf(player) + tieBreak + ".");
+            } else {
+                sendTo(player, "SERVER: Tournament round " + round + ": you lost to " + match.winner + tieBreak
+                        + (format == Format.SINGLE ? " and are out of the tournament." : "."));
+            }
+        }
+    }
+
+    // Runs on whichever thread reported the last result of the round
+    private void finishRound() {
+        if (format == Format.SINGLE) {
+            List<String> advancing = new ArrayList<>();
+            for (Match match : roundMatches) {
+                advancing.add(match.second == null ? match.first : match.winner);
+            }
+            advancing.sort(Comparator.comparingInt(this::seedOf));
+            alive = advancing;
+        }
+        matches.clear();
+        if ((format == Format.SINGLE && alive.size() <= 1) || (format == Format.SWISS && round >= totalRounds)) {
+            finish();
+        } else {
+            startRound();
+        }
+    }
+
+    private void startRound() {
+        round++;
+        List<Match> pairings = format == Format.SINGLE ? pairSingleElimination() : pairSwiss();
+        List<Match> games = new ArrayList<>();
+        for (Match match : pairings) {
+            if (match.second == null) {
+                match.finished.set(true);
+                match.winner = match.first;
+                points.merge(match.first, 1.0, Double::sum);
+                sendTo(match.first, "SERVER: Tournament round " + round + ": you have a bye.");
+            } else {
+                playedPairs.add(pairKey(match.first, match.second));
+                matches.put(match.first, match);
+                matches.put(match.second, match);
+                games.add(match);
+            }
+        }
+        roundMatches = pairings;
+        // Set before launching anything so a quick forfeit can't finish the round early
+        pendingMatches.set(games.size());
+        Server.broadcastMessage("SERVER: Tournament round " + round + " of " + totalRounds + " has started with "
+                + games.size() + " games.", null);
+        for (Match match : games) {
+            launcher.execute(() -> launch(match));
+        }
+    }
+
+    /*
+    A player who is offline, or still busy with a game that started before they were blocked from challenges,
+    forfeits the match rather than having two games at once.
+     */
+    private void launch(Match match) {
+        boolean firstReady = isReady(match.first);
+        boolean secondReady = isReady(match.second);
+        if (firstReady && secondReady && Server.startGame(match.first, match.second, false)) {
+            if (MATCH_SECONDS > 0) {
+                launcher.schedule(() -> timeOut(match), MATCH_SECONDS, TimeUnit.SECONDS);
+            }
+            return;
+        }
+        if (firstReady && Server.isOnline(match.first)) {
+            record(match.first, match.second, true, 0, 0);
+        } else if (secondReady && Server.isOnline(match.second)) {
+            record(match.second, match.first, true, 0, 0);
+        } else {
+            record(match.first, match.second, false, 0, 0);
+        }
+    }
+
+    // Only ends the game if it is still this match's; the players may have moved on to the next round already
+    private void timeOut(Match match) {
+        if (!match.finished.get() && matches.get(match.first) == match) {
+            Server.timeOutGame(match.first);
+        }
+    }
+
+    private boolean isReady(String player) {
+        if (!Server.isInGame(player)) {
+            return true;
+        }
+        sendTo(player, "SERVER: You were still in another game when your tournament round " + round + " match started, so you forfeit it.");
+        return false;
+    }
+
+    // Top seed gets the bye when the field is odd, everyone else plays outside in (best remaining seed vs worst)
+    private List<Match> pairSingleElimination() {
+        List<String> players = new ArrayList<>(alive);
+        List<Match> pairings = new ArrayList<>();
+        if (players.size() % 2 == 1) {
+            pairings.add(new Match(players.remove(0), null));
+        }
+        for (int i = 0, j = players.size() - 1; i < j; i++, j--) {
+            pairings.add(new Match(players.get(i), players.get(j)));
+        }
+        return pairings;
+    }
+
+    // Players with the same score meet each other, avoiding rematches where possible; the lowest ranked player gets the bye
+    private List<Match> pairSwiss() {
+        List<String> standings = standings();
+        List<Match> pairings = new ArrayList<>();
+        if (standings.size() % 2 == 1) {
+            for (int i = standings.size() - 1; i >= 0; i--) {
+                if (!playedPairs.contains(pairKey(standings.get(i), null))) {
+                    playedPairs.add(pairKey(standings.get(i), null));
+                    pairings.add(new Match(standings.remove(i), null));
+                    break;
+                }
+            }
+            if (pairings.isEmpty()) {
+                pairings.add(new Match(standings.remove(standings.size() - 1), null));
+            }
+        }
+        while (!standings.isEmpty()) {
+            String player = standings.remove(0);
+            int opponent = 0;
+            for (int i = 0; i < standings.size(); i++) {
+                if (!playedPairs.contains(pairKey(player, standings.get(i)))) {
+                    opponent = i;
+                    break;
+                }
+            }
+            pairings.add(new Match(player, standings.remove(opponent)));
+        }
+        return pairings;
+    }
+
+    private List<String> standings() {
+        List<String> standings = new ArrayList<>(entrants);
+        standings.sort(Comparator.comparingDouble((String player) -> -points.get(player))
+                .thenComparingInt(player -> -tieBreaks.get(player))
+                .thenComparingInt(this::seedOf));
+        return standings;
+    }
+
+    private void finish() {
+        state = State.FINISHED;
+        if (format == Format.SINGLE) {
+            Server.broadcastMessage("SERVER: " + alive.get(0) + " has won the WordWhiz tournament!", null);
+            return;
+        }
+        List<String> standings = standings();
+        StringBuilder podium = new StringBuilder();
+        for (int i = 0; i < Math.min(3, standings.size()); i++) {
+            String player = standings.get(i);
+            podium.append(i == 0 ? "" : ", ").append(i + 1).append(". ").append(player).append(" (").append(points.get(player)).append(")");
+        }
+        Server.broadcastMessage("SERVER: The WordWhiz tournament is over! " + podium, null);
+        for (int i = 0; i < standings.size(); i++) {
+            sendTo(standings.get(i), "SERVER: You finished the tournament in place " + (i + 1) + " of " + standings.size() + ".");
+        }
+    }
+
+    private int seedOf(String player) {
+        return seeds.get(player);
+    }
+
+    private static String pairKey(String first, String second) {
+        if (second == null) {
+            return first + "|";
+        }
+        return first.compareTo(second) < 0 ? first + "|" + second : second + "|" + first;
+    }
+
+    private static void sendTo(String username, String message) {
+        Server.sendTo(username, message);
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+Load driver for tournament mode. Starts a server in this JVM, connects a field of bot players, runs one tournament
+through the normal /tournament commands and reports how long each round took and the guess latency the bots saw.
+
+    java -cp .:resources TournamentBenchmark [players] [single|swiss] [port]
+
+The default of 1024 players puts 512 matches in the first round. Bots guess one word at a time, waiting for feedback
+before the next, and hit the answer on a random guess (or never, to produce some stalemates). Rate limits are lifted
+unless set explicitly, since the point is to load the tournament code and not the limiter. Connecting the field is
+slow at this size (every join broadcasts the whole user list) and is reported separately from the rounds.
+ */
+public class TournamentBenchmark {
+    private final int port;
+    private final List<Bot> bots = new ArrayList<>();
+    private final List<Long> guessLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Integer, Long> roundStarts = new ConcurrentHashMap<>();
+    private final CountDownLatch created = new CountDownLatch(1);
+    private final CountDownLatch joined;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile long finishedAt;
+    private volatile String result;
+
+    private TournamentBenchmark(int port, int players) {
+        this.port = port;
+        this.joined = new CountDownLatch(players);
+    }
+
+    // One connected player. Everything after the handshake happens on its reader thread.
+    private class Bot {
+        final String name;
+        final Socket socket;
+        final PrintWriter out;
+        final Queue<Long> pendingGuesses = new ConcurrentLinkedQueue<>();
+        String answer;
+        int guessesLeft;
+        int winningGuess;
+
+        Bot(String name) throws IOException {
+            this.name = name;
+            this.socket = new Socket("localhost", port);
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            out.println(name);
+            Thread reader = new Thread(this::drain, "benchmark-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void drain() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 64 * 1024)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    handle(line);
+                }
+            } catch (IOException e) {
+                // Socket closed at the end of the run
+            }
+        }
+
+        private void handle(String line) {
+            if (line.startsWith("ANSWER:")) {
+                answer = line.substring(7);
+                guessesLeft = 5;
+                winningGuess = ThreadLocalRandom.current().nextInt(1, 8); // 6 and 7 never guess it
+                guess();
+            } else if (line.startsWith("GUESS_FEEDBACK:") || line.equals("INVALID_WORD") || line.equals("SERVER: No active game.")) {
+                Long sent = pendingGuesses.poll();
+                if (sent != null) {
+                    guessLatencies.add(System.nanoTime() - sent);
+                }
+                if (answer != null && !line.equals("SERVER: No active game.")) {
+                    guess();
+                }
+            } else if (line.startsWith("WINNER:") || line.startsWith("LOSER:") || line.startsWith("STALEMATE:")) {
+                answer = null;
+            } else if (line.startsWith("SERVER: You joined the tournament")) {
+                created.countDown();
+                joined.countDown();
+            } else if (line.startsWith("SERVER: Tournament round ") && line.contains(" has started")) {
+                roundStarts.putIfAbsent(Integer.parseInt(line.substring(25, line.indexOf(' ', 25))), System.nanoTime());
+            } else if (line.contains("has won the WordWhiz tournament") || line.startsWith("SERVER: The WordWhiz tournament is over")) {
+                if (result == null) {
+                    finishedAt = System.nanoTime();
+                    result = line;
+                    finished.countDown();
+                }
+            }
+        }
+
+        private void guess() {
+            if (guessesLeft == 0) {
+                return;
+            }
+            guessesLeft--;
+            String word = 5 - guessesLeft == winningGuess ? answer : Server.getDictionary().randomAnswer(ThreadLocalRandom.current());
+            pendingGuesses.add(System.nanoTime());
+            out.println("GUESS:" + word);
+        }
+    }
+
+    private void run(int players, String format) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Bot organizer = new Bot("b0");
+        bots.add(organizer);
+        organizer.out.println("/tournament create " + format);
+        organizer.out.println("/tournament join");
+        // Everyone else joins once the tournament exists, otherwise early joins would be turned away
+        if (!created.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Tournament was not created");
+        }
+        for (int i = 1; i < players; i++) {
+            Bot bot = new Bot("b" + i);
+            bots.add(bot);
+            bot.out.println("/tournament join");
+        }
+        if (!joined.await(5, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Only " + (players - joined.getCount()) + " of " + players + " players joined");
+        }
+        long setup = System.nanoTime() - start;
+
+        organizer.out.println("/tournament start");
+        if (!finished.await(30, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Tournament did not finish, last round started: " + roundStarts.keySet());
+        }
+        for (Bot bot : bots) {
+            bot.socket.close();
+        }
+        report(players, format, setup);
+    }
+
+    private void report(int players, String format, long setupNanos) {
+        System.out.printf("%d players (%s) connected and joined in %.2f s%n", players, format, setupNanos / 1e9);
+        List<Integer> rounds = new ArrayList<>(new TreeSet<>(roundStarts.keySet()));
+        for (int i = 0; i < rounds.size(); i++) {
+            long roundStart = roundStarts.get(rounds.get(i));
+            long roundEnd = i + 1 < rounds.size() ? roundStarts.get(rounds.get(i + 1)) : finishedAt;
+            System.out.printf("Round %d completed in %d ms%n", rounds.get(i), TimeUnit.NANOSECONDS.toMillis(roundEnd - roundStart));
+        }
+        System.out.printf("Tournament played in %d ms: %s%n",
+                TimeUnit.NANOSECONDS.toMillis(finishedAt - roundStarts.get(rounds.get(0))), result);
+        List<Long> latencies;
+        synchronized (guessLatencies) {
+            latencies = new ArrayList<>(guessLatencies);
+        }
+        if (latencies.isEmpty()) {
+            System.out.println("No guesses answered.");
+            return;
+        }
+        Collections.sort(latencies);
+        System.out.printf("Guess latency (us) over %d guesses: p50 %d, p95 %d, p99 %d, max %d%n", latencies.size(),
+                Replay.percentile(latencies, 50), Replay.percentile(latencies, 95), Replay.percentile(latencies, 99),
+                TimeUnit.NANOSECONDS.toMicros(latencies.get(latencies.size() - 1)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        String format = args.length > 1 ? args[1] : "single";
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5998;
+        if (players < 2) {
+            System.out.println("Usage: java TournamentBenchmark [players >= 2] [single|swiss] [port]");
+            return;
+        }
+
+        // Must be set before Server and RateLimiter are loaded
+        for (String key : new String[]{"ratelimit.client.rate", "ratelimit.guess.rate", "ratelimit.chat.rate"}) {
+            if (System.getProperty(key) == null) {
+                System.setProperty(key, "100000");
+            }
+        }
+        System.clearProperty("capture.file");
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[]{Integer.toString(port)});
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.ERROR, null, "Benchmark server failed", e);
+            }
+        }, "benchmark-server");
+        server.setDaemon(true);
+        server.start();
+        Replay.waitForServer(port);
+
+        new TournamentBenchmark(port, players).run(players, format);
+        System.exit(0);
+    }
+}
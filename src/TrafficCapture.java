@@ -0,0 +1,245 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Records every line clients send to the server so a run can be replayed later with Replay.
+
+Turned on with -Dcapture.file=traffic.cap. The file starts with a header holding the seed the server used for
+picking answers and the fingerprint of the dictionary it drew them from, followed by one record per connection open, inbound line and close:
+    byte type, varint connection, varint micros since the previous record, [varint length, UTF-8 line]
+Relative varint timestamps keep a busy capture to a few bytes of overhead per line.
+
+Handler threads only timestamp a record and queue it; a writer thread does the encoding and flushing, so a slow
+disk can't hold up client handling. If the queue (-Dcapture.bufferSize, default 65536 records) fills up, records are
+dropped and the count is logged.
+ */
+public class TrafficCapture {
+    public static final int MAGIC = 0x57574350; // "WWCP"
+    public static final int FORMAT = 2;
+    public static final byte OPEN = 1;
+    public static final byte LINE = 2;
+    public static final byte CLOSE = 3;
+
+    private static final AtomicInteger nextConnection = new AtomicInteger();
+    private static volatile TrafficCapture active;
+
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(Integer.getInteger("capture.bufferSize", 65536));
+    private final AtomicLong dropped = new AtomicLong();
+    private final List<Record> batch = new ArrayList<>();
+    private final long startNanos;
+    private final DataOutputStream out;
+    private long lastRecord; // Micros since start of the last record written, only touched by the writing thread
+    private long reportedDrops;
+    private boolean closed;
+
+    private TrafficCapture(OutputStream output, long seed, String dictionary) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(seed);
+        out.writeUTF(dictionary);
+        out.writeLong(System.currentTimeMillis());
+        startNanos = System.nanoTime();
+    }
+
+    // Starts capturing if -Dcapture.file is set
+    public static void startIfConfigured(long seed, String dictionary) throws IOException {
+        String file = System.getProperty("capture.file");
+        if (file == null) {
+            return;
+        }
+        TrafficCapture capture = new TrafficCapture(new FileOutputStream(file), seed, dictionary);
+        Thread writer = new Thread(capture::writeLoop, "traffic-capture-writer");
+        writer.setDaemon(true);
+        writer.start();
+        active = capture;
+        Runtime.getRuntime().addShutdownHook(new Thread(capture::close, "traffic-capture-flush"));
+        EventLog.info(EventLog.Type.SERVER, null, "Capturing client traffic to " + file);
+    }
+
+    public static int newConnectionId() {
+        return nextConnection.incrementAndGet();
+    }
+
+    public static void opened(int connection) {
+        TrafficCapture capture = active;
+        if (capture != null) {
+            capture.enqueue(OPEN, connection, null);
+        }
+    }
+
+    public static void received(int connection, String line) {
+        TrafficCapture capture = active;
+        if (capture != null && line != null) {
+            capture.enqueue(LINE, connection, line);
+        }
+    }
+
+    public static void closed(int connection) {
+        TrafficCapture capture = active;
+        if (capture != null) {
+            capture.enqueue(CLOSE, connection, null);
+        }
+    }
+
+    // Called on handler threads: timestamp and hand off, never blocks
+    private void enqueue(byte type, int connection, String line) {
+        long atMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        if (!queue.offer(new Record(type, connection, atMicros, line))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Record first = queue.take();
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    writeBatch();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes and flushes everything in batch; the flush is cheap here since it is off the handler threads
+    private void writeBatch() {
+        try {
+            for (Record record : batch) {
+                out.writeByte(record.type);
+                writeVarLong(out, record.connection);
+                // Records are stamped before they are queued, so two threads can queue slightly out of order
+                long delta = Math.max(0, record.atMicros - lastRecord);
+                writeVarLong(out, delta);
+                lastRecord += delta;
+                if (record.line != null) {
+                    byte[] bytes = record.line.getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(out, bytes.length);
+                    out.write(bytes);
+                }
+            }
+            out.flush();
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                EventLog.log(EventLog.Level.WARN, EventLog.Type.SERVER, null, -1,
+                        (drops - reportedDrops) + " traffic capture records dropped, queue full", null);
+                reportedDrops = drops;
+            }
+        } catch (IOException e) {
+            EventLog.error(EventLog.Type.ERROR, null, "Traffic capture failed, stopping it", e);
+            active = null;
+        } finally {
+            batch.clear();
+        }
+    }
+
+    // Shutdown hook: writes whatever is still queued, then closes the file
+    private synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.drainTo(batch);
+        writeBatch();
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Traffic capture close failed: " + e);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public static class Record {
+        public final byte type;
+        public final int connection;
+        public final long atMicros; // Since the start of the capture
+        public final String line;
+
+        Record(byte type, int connection, long atMicros, String line) {
+            this.type = type;
+            this.connection = connection;
+            this.atMicros = atMicros;
+            this.line = line;
+        }
+    }
+
+    public static class Recording {
+        public final long seed;
+        public final String dictionary; // Fingerprint of the dictionary the server started with
+        public final long startedAt;
+        public final List<Record> records;
+
+        Recording(long seed, String dictionary, long startedAt, List<Record> records) {
+            this.seed = seed;
+            this.dictionary = dictionary;
+            this.startedAt = startedAt;
+            this.records = records;
+        }
+    }
+
+    // Reads a whole capture. A capture cut short by a crash is read up to its last complete record.
+    public static Recording read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Not a traffic capture: " + file);
+            }
+            long seed = in.readLong();
+            String dictionary = in.readUTF();
+            long startedAt = in.readLong();
+            List<Record> records = new ArrayList<>();
+            long at = 0;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    int connection = (int) readVarLong(in);
+                    at += readVarLong(in);
+                    String line = null;
+                    if (type == LINE) {
+                        byte[] bytes = new byte[(int) readVarLong(in)];
+                        in.readFully(bytes);
+                        line = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    records.add(new Record((byte) type, connection, at, line));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            return new Recording(seed, dictionary, startedAt, records);
+        }
+    }
+}